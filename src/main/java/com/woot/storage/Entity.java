@@ -33,8 +33,15 @@ public class Entity {
         return deleted;
     }
 
+    /**
+     * Number of bytes {@link #toBytes()} takes up on disk.
+     */
+    public int getSerializedSize() {
+        return 2 + 8 + 1 + 4 + key.length + value.length;
+    }
+
     public ByteBuffer toBytes() {
-        ByteBuffer allocate = ByteBuffer.allocate(2 + 8 + 1 + 4 + key.length + value.length);
+        ByteBuffer allocate = ByteBuffer.allocate(getSerializedSize());
         allocate.putShort((short) key.length);
         allocate.putLong(timestamp);
         allocate.put(deleted ? Byte.MAX_VALUE : Byte.MIN_VALUE);
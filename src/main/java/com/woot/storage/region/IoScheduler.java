@@ -0,0 +1,157 @@
+package com.woot.storage.region;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Arbitrates disk bandwidth between foreground reads and background (flush / compaction) writes.
+ * <p/>
+ * * Foreground reads report their latency through {@link #readStarted()} / {@link #readFinished(long)}.
+ * * Background writes ask for their bytes through {@link #acquireWrite(int)} which goes through a token bucket
+ * measured in bytes/sec and briefly defers while foreground reads are in flight.
+ * * In auto tune mode the write rate is halved whenever the average read latency rises well above the best latency
+ * seen so far, and above what a page cache hit costs, and is slowly given back while reads stay fast.
+ */
+public class IoScheduler {
+
+    private static final Logger log = LogManager.getLogger(IoScheduler.class);
+
+    public static final long DEFAULT_WRITE_BYTES_PER_SECOND = 32L * 1024 * 1024;
+    public static final int DEFAULT_WRITE_CHUNK_BYTES = 64 * 1024;
+    public static final long DEFAULT_SYNC_INTERVAL_BYTES = 1024L * 1024;
+
+    // How long a single write chunk will wait on in flight reads before going ahead anyway.
+    private static final long MAX_DEFER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Read latency this many times over the baseline is treated as contention.
+    private static final double LATENCY_BACKOFF_FACTOR = 2.0;
+    // Reads faster than this are served from the page cache and never count as contention however they compare to
+    // the baseline.
+    private static final long MIN_CONTENDED_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Rate changes smaller than this fraction of the current rate aren't applied.
+    private static final double RATE_CHANGE_TOLERANCE = 0.01;
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final RateLimiter writeLimiter;
+    private final long maxWriteBytesPerSecond;
+    private final long minWriteBytesPerSecond;
+    private final boolean autoTune;
+    private final int writeChunkBytes;
+    private final long syncIntervalBytes;
+
+    private final AtomicInteger activeReads = new AtomicInteger();
+    private final AtomicLong completedReads = new AtomicLong();
+    // Moving average of the read latency stored as the bits of a double so it can be updated with a CAS, -1 when unknown.
+    private final AtomicLong readLatencyNanos = new AtomicLong(Double.doubleToLongBits(-1));
+
+    // Guarded by this.
+    private double baselineLatencyNanos = -1;
+    private long lastAdjustment = System.nanoTime();
+    private long lastCompletedReads = 0;
+
+    public IoScheduler() {
+        this(DEFAULT_WRITE_BYTES_PER_SECOND, true, DEFAULT_WRITE_CHUNK_BYTES, DEFAULT_SYNC_INTERVAL_BYTES);
+    }
+
+    public IoScheduler(long maxWriteBytesPerSecond, boolean autoTune, int writeChunkBytes, long syncIntervalBytes) {
+        if (maxWriteBytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Write rate must be positive " + maxWriteBytesPerSecond);
+        }
+        if (writeChunkBytes <= 0) {
+            throw new IllegalArgumentException("Write chunk size must be positive " + writeChunkBytes);
+        }
+        this.maxWriteBytesPerSecond = maxWriteBytesPerSecond;
+        this.minWriteBytesPerSecond = Math.max(1, maxWriteBytesPerSecond / 16);
+        this.autoTune = autoTune;
+        this.writeChunkBytes = writeChunkBytes;
+        this.syncIntervalBytes = syncIntervalBytes;
+        this.writeLimiter = RateLimiter.create(maxWriteBytesPerSecond);
+    }
+
+    public int getWriteChunkBytes() {
+        return writeChunkBytes;
+    }
+
+    public long getSyncIntervalBytes() {
+        return syncIntervalBytes;
+    }
+
+    public double getWriteBytesPerSecond() {
+        return writeLimiter.getRate();
+    }
+
+    public void readStarted() {
+        activeReads.incrementAndGet();
+    }
+
+    public void readFinished(long elapsedNanos) {
+        activeReads.decrementAndGet();
+        completedReads.incrementAndGet();
+        while (true) {
+            long currentBits = readLatencyNanos.get();
+            double current = Double.longBitsToDouble(currentBits);
+            double updated = current < 0 ? elapsedNanos : current + EWMA_ALPHA * (elapsedNanos - current);
+            if (readLatencyNanos.compareAndSet(currentBits, Double.doubleToLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blocks the calling background writer until it is allowed to write the given number of bytes.
+     */
+    public void acquireWrite(int bytes) {
+        if (bytes <= 0) return;
+        long deferUntil = System.nanoTime() + MAX_DEFER_NANOS;
+        while (activeReads.get() > 0 && System.nanoTime() < deferUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        if (autoTune) {
+            adjustRate();
+        }
+        writeLimiter.acquire(bytes);
+    }
+
+    private synchronized void adjustRate() {
+        long now = System.nanoTime();
+        if (now - lastAdjustment < ADJUST_INTERVAL_NANOS) return;
+        lastAdjustment = now;
+
+        // No reads since the last adjustment means nothing to protect, forget the old latency so a stale spike doesn't
+        // keep writes throttled.
+        long reads = completedReads.get();
+        if (reads == lastCompletedReads) {
+            readLatencyNanos.set(Double.doubleToLongBits(-1));
+        }
+        lastCompletedReads = reads;
+
+        double latency = Double.longBitsToDouble(readLatencyNanos.get());
+        if (latency >= 0 && (baselineLatencyNanos < 0 || latency < baselineLatencyNanos)) {
+            baselineLatencyNanos = latency;
+        }
+
+        double rate = writeLimiter.getRate();
+        double newRate;
+        if (latency > MIN_CONTENDED_LATENCY_NANOS && latency > baselineLatencyNanos * LATENCY_BACKOFF_FACTOR) {
+            newRate = Math.max(minWriteBytesPerSecond, rate / 2);
+        } else {
+            newRate = Math.min(maxWriteBytesPerSecond, rate + maxWriteBytesPerSecond / 16);
+            // Let the baseline slowly follow healthy reads. It never moves while backing off, otherwise sustained
+            // contention would become the new baseline and the backoff would stop.
+            if (latency >= 0) {
+                baselineLatencyNanos += (latency - baselineLatencyNanos) * 0.01;
+            }
+        }
+        if (Math.abs(newRate - rate) > rate * RATE_CHANGE_TOLERANCE) {
+            log.debug(String.format("Adjusting background write rate from %.0f to %.0f bytes/sec (read latency %.0fns, baseline %.0fns)",
+                    rate, newRate, latency, baselineLatencyNanos));
+            writeLimiter.setRate(newRate);
+        }
+    }
+}
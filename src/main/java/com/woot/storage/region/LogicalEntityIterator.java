@@ -17,20 +17,17 @@ public class LogicalEntityIterator extends AbstractIterator<Entity> {
 
     @Override
     protected Entity computeNext() {
-        if (lexicalIterator.hasNext()) {
+        // Skip tombstones and the older versions of a key instead of returning null, null is a value to AbstractIterator.
+        while (lexicalIterator.hasNext()) {
             Entity next = lexicalIterator.next();
 
             if (next.isDeleted()) {
                 previous = next;
-                return null;
+                continue;
             }
 
             if (previous != null && Arrays.equals(previous.getKey(), next.getKey())) {
-                if (lexicalIterator.hasNext()) {
-                    return null;
-                } else {
-                    return endOfData();
-                }
+                continue;
             }
             previous = next;
             return next;
@@ -1,6 +1,9 @@
 package com.woot.storage.region;
 
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.primitives.SignedBytes;
@@ -9,6 +12,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -33,17 +39,45 @@ public class RegionFile {
     private final ConcurrentNavigableMap<byte[], Entity> memstore = new ConcurrentSkipListMap<byte[], Entity>(SignedBytes.lexicographicalComparator());
     private final RegionManager regionManager;
 
+    // Memstore size that queues a flush, and the size past which puts wait for that flush to catch up.
+    public static final int MEMSTORE_FLUSH_SIZE = 500;
+    public static final int MEMSTORE_BLOCKING_SIZE = MEMSTORE_FLUSH_SIZE * 4;
+
+    // Approximate size of a block, the unit parallel scans split a region file on.
+    static final int BLOCK_SIZE_BYTES = 16 * 1024;
+
+    // Offset and first key of every block in the disk file. The first block's key is always empty so every key has a
+    // block to fall into, even when the file is empty.
+    private final List<Long> blockOffsets;
+    private final List<byte[]> blockKeys;
+    private final long diskLength;
+    private final int diskRecords;
+
     public RegionFile(File regionFile, RegionManager regionManager) {
         this.regionFile = regionFile;
         this.regionManager = regionManager;
         int numRecords = 0;
+        long offset = 0;
+        List<Long> offsets = new ArrayList<Long>();
+        List<byte[]> keys = new ArrayList<byte[]>();
+        offsets.add(0L);
+        keys.add(new byte[0]);
         // Open the region file and fill out the stuffs we need.
-        Iterator<Entity> diskValues = getDiskValues();
+        Iterator<Entity> diskValues = new RegionFileEntityIterator(regionFile);
         while (diskValues.hasNext()) {
             Entity next = diskValues.next();
+            if (offset - offsets.get(offsets.size() - 1) >= BLOCK_SIZE_BYTES) {
+                offsets.add(offset);
+                keys.add(next.getKey());
+            }
+            offset += next.getSerializedSize();
             updateRange(next);
             numRecords++;
         }
+        this.blockOffsets = ImmutableList.copyOf(offsets);
+        this.blockKeys = ImmutableList.copyOf(keys);
+        this.diskLength = offset;
+        this.diskRecords = numRecords;
         if (startKey != null && endKey != null) {
             log.info(String.format("Region %s opened (%d). Start key is %s and end key is %s", regionFile.getAbsolutePath()
                     ,numRecords, new String(startKey), new String(endKey)));
@@ -57,8 +91,8 @@ public class RegionFile {
     }
 
     public void add(Entity entity) {
-        // Easy approach to this.
-        Iterator<Entity> values = getValues();
+        // Easy approach to this. This is part of ingest, not a foreground read, so it isn't reported to the io scheduler.
+        Iterator<Entity> values = getBackgroundValues(memstore);
         while (values.hasNext()) {
             Entity currentEntity = values.next();
             if (Arrays.equals(currentEntity.getKey(), entity.getKey())) {
@@ -74,11 +108,25 @@ public class RegionFile {
     private void addToMemstore(Entity entity) {
         this.memstore.put(entity.getKey(), entity);
         this.updateRange(entity);
-        if (memstore.size() > 500) {
-            regionManager.flushRegion(this);
+        if (memstore.size() > MEMSTORE_FLUSH_SIZE) {
+            regionManager.requestFlush(this);
         }
     }
 
+    /**
+     * Puts an entity carried over from the region this one replaced straight into the memstore.
+     */
+    void restore(Entity entity) {
+        this.memstore.put(entity.getKey(), entity);
+        this.updateRange(entity);
+    }
+
+    NavigableMap<byte[], Entity> snapshotMemstore() {
+        NavigableMap<byte[], Entity> snapshot = new TreeMap<byte[], Entity>(SignedBytes.lexicographicalComparator());
+        snapshot.putAll(memstore);
+        return snapshot;
+    }
+
     public Optional<Entity> get(byte[] key) {
         Iterator<Entity> values = getValues();
         while (values.hasNext()) {
@@ -95,12 +143,120 @@ public class RegionFile {
     }
 
     public Iterator<Entity> getValues() {
-        ImmutableList<Iterator<Entity>> of = ImmutableList.of(memstore.values().iterator(), getDiskValues());
+        return getValues(new RegionFileEntityIterator(regionFile, regionManager.getIoScheduler()));
+    }
+
+    /**
+     * Values of the disk file merged with the given view of the memstore. The disk reads aren't reported as foreground
+     * io, flushes and puts use this so they don't count their own reads against the read latency flushes are
+     * throttled on.
+     */
+    Iterator<Entity> getBackgroundValues(NavigableMap<byte[], Entity> memstoreSnapshot) {
+        ImmutableList<Iterator<Entity>> of = ImmutableList.<Iterator<Entity>>of(memstoreSnapshot.values().iterator(),
+                new RegionFileEntityIterator(regionFile));
+        return new LogicalEntityIterator(Iterators.mergeSorted(of, new EnityComparator()));
+    }
+
+    int getBlockCount() {
+        return blockOffsets.size();
+    }
+
+    /**
+     * Index of the block the given key would be stored in.
+     */
+    int findBlock(byte[] key) {
+        int index = Collections.binarySearch(blockKeys, key, SignedBytes.lexicographicalComparator());
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    long estimateSize(int fromBlock, int toBlock) {
+        return (diskRecords + (long) memstore.size()) * (toBlock - fromBlock) / getBlockCount();
+    }
+
+    /**
+     * Opens the disk file for {@link #getValues(FileChannel, int, int, byte[], byte[], Predicate)}. The open channel
+     * keeps the data readable even if a flush deletes the file.
+     */
+    FileChannel openDiskChannel() {
+        try {
+            return new RandomAccessFile(regionFile, "r").getChannel();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException("Error opening file ", e);
+        }
+    }
+
+    /**
+     * Values stored in the blocks [fromBlock, toBlock) whose key is in [startKey, endKey) and matches the key filter,
+     * merged with the memstore entries for the same keys. Null keys and filter mean unbounded. Entities filtered out on
+     * disk are skipped without reading their value. The disk reads are bulk reads so they aren't reported as
+     * foreground io.
+     */
+    Iterator<Entity> getValues(FileChannel diskChannel, int fromBlock, int toBlock, byte[] startKey, byte[] endKey, Predicate<byte[]> keyFilter) {
+        Comparator<byte[]> comparator = SignedBytes.lexicographicalComparator();
+        byte[] lower = fromBlock == 0 ? null : blockKeys.get(fromBlock);
+        if (startKey != null && (lower == null || comparator.compare(startKey, lower) > 0)) {
+            lower = startKey;
+        }
+        byte[] upper = toBlock == getBlockCount() ? null : blockKeys.get(toBlock);
+        if (endKey != null && (upper == null || comparator.compare(endKey, upper) < 0)) {
+            upper = endKey;
+        }
+        if (lower != null && upper != null && comparator.compare(lower, upper) >= 0) {
+            return Iterators.emptyIterator();
+        }
+
+        Predicate<byte[]> keyPredicate = new KeyRangePredicate(lower, upper);
+        if (keyFilter != null) {
+            keyPredicate = Predicates.and(keyPredicate, keyFilter);
+        }
+
+        long endOffset = toBlock == getBlockCount() ? diskLength : blockOffsets.get(toBlock);
+        Iterator<Entity> diskValues = new RegionFileEntityIterator(diskChannel, null, blockOffsets.get(fromBlock), endOffset, keyPredicate);
+
+        ConcurrentNavigableMap<byte[], Entity> memstoreRange = memstore;
+        if (lower != null) {
+            memstoreRange = memstoreRange.tailMap(lower, true);
+        }
+        if (upper != null) {
+            memstoreRange = memstoreRange.headMap(upper, false);
+        }
+        Iterator<Entity> memstoreValues = memstoreRange.values().iterator();
+        if (keyFilter != null) {
+            memstoreValues = Iterators.filter(memstoreValues, Predicates.compose(keyFilter, ENTITY_KEY));
+        }
+
+        ImmutableList<Iterator<Entity>> of = ImmutableList.of(memstoreValues, diskValues);
         return new LogicalEntityIterator(Iterators.mergeSorted(of, new EnityComparator()));
     }
 
-    private Iterator<Entity> getDiskValues() {
-        return new RegionFileEntityIterator(regionFile);
+    private static final Function<Entity, byte[]> ENTITY_KEY = new Function<Entity, byte[]>() {
+        @Override
+        public byte[] apply(Entity entity) {
+            return entity.getKey();
+        }
+    };
+
+    private static class KeyRangePredicate implements Predicate<byte[]> {
+
+        private final byte[] lower;
+        private final byte[] upper;
+
+        private KeyRangePredicate(byte[] lower, byte[] upper) {
+            this.lower = lower;
+            this.upper = upper;
+        }
+
+        @Override
+        public boolean apply(byte[] key) {
+            Comparator<byte[]> comparator = SignedBytes.lexicographicalComparator();
+            return (lower == null || comparator.compare(key, lower) >= 0)
+                    && (upper == null || comparator.compare(key, upper) < 0);
+        }
+    }
+
+    private Iterator<Entity> getValues(Iterator<Entity> diskValues) {
+        ImmutableList<Iterator<Entity>> of = ImmutableList.of(memstore.values().iterator(), diskValues);
+        return new LogicalEntityIterator(Iterators.mergeSorted(of, new EnityComparator()));
     }
 
     public byte[] getStartKey() {
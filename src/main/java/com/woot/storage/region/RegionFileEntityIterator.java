@@ -1,5 +1,6 @@
 package com.woot.storage.region;
 
+import com.google.common.base.Predicate;
 import com.google.common.collect.AbstractIterator;
 import com.woot.storage.Entity;
 
@@ -23,11 +24,47 @@ import java.nio.channels.FileChannel;
 public class RegionFileEntityIterator extends AbstractIterator<Entity> {
 
     private final FileChannel inChannel;
+    private final boolean ownsChannel;
+    private final IoScheduler ioScheduler;
+    private final long endOffset;
+    private final Predicate<byte[]> keyFilter;
+    private long position;
 
     public RegionFileEntityIterator(File file) {
+        this(file, null);
+    }
+
+    /**
+     * @param ioScheduler if not null every read is reported to the scheduler as foreground io.
+     */
+    public RegionFileEntityIterator(File file, IoScheduler ioScheduler) {
+        this(open(file), true, ioScheduler, 0, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Iterates the entities between two offsets of an already open channel. Both offsets must fall on an entity
+     * boundary. Reads are positional so several iterators can share the channel, which is left open for the caller to
+     * close.
+     *
+     * @param keyFilter if not null entities whose key doesn't match are skipped without reading their value.
+     */
+    public RegionFileEntityIterator(FileChannel channel, IoScheduler ioScheduler, long startOffset, long endOffset, Predicate<byte[]> keyFilter) {
+        this(channel, false, ioScheduler, startOffset, endOffset, keyFilter);
+    }
+
+    private RegionFileEntityIterator(FileChannel channel, boolean ownsChannel, IoScheduler ioScheduler, long startOffset, long endOffset, Predicate<byte[]> keyFilter) {
+        this.inChannel = channel;
+        this.ownsChannel = ownsChannel;
+        this.ioScheduler = ioScheduler;
+        this.position = startOffset;
+        this.endOffset = endOffset;
+        this.keyFilter = keyFilter;
+    }
+
+    private static FileChannel open(File file) {
         try {
             RandomAccessFile aFile = new RandomAccessFile(file, "r");
-            inChannel = aFile.getChannel();
+            return aFile.getChannel();
         } catch (FileNotFoundException e) {
             throw new RuntimeException("Error opening file ", e);
         }
@@ -35,34 +72,76 @@ public class RegionFileEntityIterator extends AbstractIterator<Entity> {
 
     @Override
     protected Entity computeNext() {
+        if (ioScheduler == null) {
+            return readNext();
+        }
+        long start = System.nanoTime();
+        ioScheduler.readStarted();
+        try {
+            return readNext();
+        } finally {
+            ioScheduler.readFinished(System.nanoTime() - start);
+        }
+    }
 
+    private Entity readNext() {
         try {
             ByteBuffer preamble = ByteBuffer.allocate(Short.SIZE / 8 + Long.SIZE / 8 + 1 + Integer.SIZE / 8);
-            int read = inChannel.read(preamble);
-            // No more elements return a null
-            if (read <= 0) {
-                inChannel.close();
-                return endOfData();
-            }
-            preamble.rewind();
+            while (true) {
+                // No more elements return a null
+                if (position >= endOffset) {
+                    return finished();
+                }
+                preamble.clear();
+                int read = read(preamble);
+                if (read <= 0) {
+                    return finished();
+                }
+                preamble.rewind();
+
+                short keyLength = preamble.getShort();
+                long timestamp = preamble.getLong();
+                byte deleted = preamble.get();
+                int valueLength = preamble.getInt();
 
-            short keyLength = preamble.getShort();
-            long timestamp = preamble.getLong();
-            byte deleted = preamble.get();
-            int valueLength = preamble.getInt();
+                ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
+                read(keyBuffer);
 
-            ByteBuffer keyBuffer = ByteBuffer.allocate(keyLength);
-            inChannel.read(keyBuffer);
+                if (keyFilter != null && !keyFilter.apply(keyBuffer.array())) {
+                    position += valueLength;
+                    continue;
+                }
 
-            ByteBuffer valueBuffer = ByteBuffer.allocate(valueLength);
-            inChannel.read(valueBuffer);
+                ByteBuffer valueBuffer = ByteBuffer.allocate(valueLength);
+                read(valueBuffer);
 
-            Entity entity = new Entity(keyBuffer.array(), valueBuffer.array(), timestamp, deleted == Byte.MAX_VALUE ? Boolean.TRUE : Boolean.FALSE);
+                Entity entity = new Entity(keyBuffer.array(), valueBuffer.array(), timestamp, deleted == Byte.MAX_VALUE ? Boolean.TRUE : Boolean.FALSE);
 
-            return entity;
+                return entity;
+            }
 
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    private int read(ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = inChannel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            total += read;
+        }
+        return total;
+    }
+
+    private Entity finished() throws IOException {
+        if (ownsChannel) {
+            inChannel.close();
+        }
+        return endOfData();
+    }
 }
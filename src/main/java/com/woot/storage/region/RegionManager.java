@@ -1,33 +1,60 @@
 package com.woot.storage.region;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.primitives.SignedBytes;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.woot.storage.Entity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class RegionManager extends AbstractIdleService {
 
     private static final Logger log = LogManager.getLogger(RegionManager.class);
 
     private Set<RegionFile> regions = new CopyOnWriteArraySet<RegionFile>();
-    private NavigableMap<byte[], RegionFile> lookup = new TreeMap<byte[], RegionFile>(SignedBytes.lexicographicalComparator());
+    // Start key -> region, rebuilt under the write lock whenever the regions change.
+    private volatile NavigableMap<byte[], RegionFile> lookup = ImmutableSortedMap.<byte[], RegionFile>orderedBy(SignedBytes.lexicographicalComparator()).build();
 
     private final Semaphore transition = new Semaphore(1);
+    // Puts hold the read lock, swapping a flushed region in for the old one holds the write lock.
+    private final ReadWriteLock regionLock = new ReentrantReadWriteLock();
 
     private final String base;
+    private final IoScheduler ioScheduler;
+    private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("region-flush-%d").setDaemon(true).build());
+    private final Map<RegionFile, Future<?>> pendingFlushes = Collections.synchronizedMap(new IdentityHashMap<RegionFile, Future<?>>());
 
     public RegionManager(String base) {
+        this(base, new IoScheduler());
+    }
+
+    public RegionManager(String base, IoScheduler ioScheduler) {
+        this.ioScheduler = ioScheduler;
         if (base.endsWith(File.separator)) {
             this.base = base;
         } else {
@@ -35,92 +62,309 @@ public class RegionManager extends AbstractIdleService {
         }
     }
 
+    public IoScheduler getIoScheduler() {
+        return ioScheduler;
+    }
+
     public Optional<RegionFile> getRegion(byte[] key) {
+        ensureRegion();
+        regionLock.readLock().lock();
+        try {
+            return findRegion(key);
+        } finally {
+            regionLock.readLock().unlock();
+        }
+    }
+
+    // Callers hold the read lock so a flush can't swap regions underneath them.
+    private Optional<RegionFile> findRegion(byte[] key) {
         if (regions.isEmpty()) {
-            createEmptyRegion();
+            return Optional.absent();
         }
         if (regions.size() == 1) {
             return Optional.of(regions.iterator().next());
         }
-        // Lazy init the lookup for key -> region
-        if (lookup.isEmpty()) {
-            for (RegionFile region : regions) {
-                lookup.put(region.getStartKey(), region);
-            }
+        Map.Entry<byte[], RegionFile> entry = lookup.floorEntry(key);
+        if (entry == null) {
+            entry = lookup.firstEntry();
         }
-        NavigableMap<byte[], RegionFile> subMap = lookup.subMap(key, true, key, false);
-        if (subMap.size() > 1) {
-            log.error("Returned multiple regions for the same key!!! ");
-        } else if (subMap.isEmpty()) {
+        if (entry == null) {
             log.error("No regions for key!!! ");
+            return Optional.absent();
+        }
+        return Optional.of(entry.getValue());
+    }
+
+    // Callers hold the write lock.
+    private void rebuildLookup() {
+        ImmutableSortedMap.Builder<byte[], RegionFile> builder = ImmutableSortedMap.orderedBy(SignedBytes.lexicographicalComparator());
+        Set<byte[]> startKeys = new TreeSet<byte[]>(SignedBytes.lexicographicalComparator());
+        for (RegionFile region : regions) {
+            if (region.getStartKey() != null && startKeys.add(region.getStartKey())) {
+                builder.put(region.getStartKey(), region);
+            }
+        }
+        lookup = builder.build();
+    }
+
+    private void ensureRegion() {
+        if (regions.isEmpty()) {
+            createEmptyRegion();
         }
-        return Optional.fromNullable(subMap.firstEntry().getValue());
     }
 
     private File createRegionFile() {
-        lookup.clear();
         return new File(base + UUID.randomUUID().toString());
     }
 
     public RegionFile createEmptyRegion() {
-        File file = createRegionFile();
+        regionLock.writeLock().lock();
         try {
-            file.createNewFile();
-        } catch (IOException e) {
-            throw new RuntimeException("Error creating new region file. ", e);
+            if (!regions.isEmpty()) {
+                return regions.iterator().next();
+            }
+            File file = createRegionFile();
+            try {
+                file.createNewFile();
+            } catch (IOException e) {
+                throw new RuntimeException("Error creating new region file. ", e);
+            }
+            RegionFile regionFile = new RegionFile(file, this);
+            regions.add(regionFile);
+            rebuildLookup();
+            return regionFile;
+        } finally {
+            regionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Queues the region to be flushed on the flush thread so the caller doesn't wait on the flush's throttled writes.
+     */
+    void requestFlush(final RegionFile regionFile) {
+        FutureTask<Void> flush = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushRegion(regionFile);
+                } catch (RuntimeException e) {
+                    log.error("Error flushing region " + regionFile.getRegionFile().getAbsolutePath(), e);
+                } finally {
+                    pendingFlushes.remove(regionFile);
+                }
+            }
+        }, null);
+        synchronized (pendingFlushes) {
+            if (pendingFlushes.containsKey(regionFile)) {
+                return;
+            }
+            pendingFlushes.put(regionFile, flush);
+        }
+        try {
+            flushExecutor.execute(flush);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the shutdown flushes every region anyway.
+            pendingFlushes.remove(regionFile);
         }
-        RegionFile regionFile = new RegionFile(file, this);
-        regions.add(regionFile);
-        return regionFile;
     }
 
+    /**
+     * Blocks until the pending flush of the region, if there is one, has finished.
+     */
+    private void awaitFlush(RegionFile regionFile) {
+        Future<?> flush = pendingFlushes.get(regionFile);
+        if (flush == null) {
+            return;
+        }
+        try {
+            flush.get();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        } catch (ExecutionException e) {
+            // Already logged by the flush itself.
+        }
+    }
+
+    /**
+     * Writes the region out to a new file and swaps it in. Puts keep going to the old region while the file is being
+     * written and are carried over to the new region's memstore.
+     */
     public RegionFile flushRegion(RegionFile regionFile) {
         try {
-            if (regionFile.getMemstore().size() > 0) {
-                transition.acquire();
-                Iterator<Entity> values = regionFile.getValues();
-                File regionDiskFile = createRegionFile();
-                while (values.hasNext()) {
-                    Entity entity = values.next();
-                    if (entity.isDeleted()) {
-                        continue;
+            transition.acquire();
+        } catch (InterruptedException e) {
+            throw Throwables.propagate(e);
+        }
+        try {
+            if (!regions.contains(regionFile) || regionFile.getMemstore().isEmpty()) {
+                return regionFile;
+            }
+            NavigableMap<byte[], Entity> snapshot = regionFile.snapshotMemstore();
+            File regionDiskFile = createRegionFile();
+            writeRegion(regionDiskFile, regionFile.getBackgroundValues(snapshot));
+            RegionFile newRegionFile = new RegionFile(regionDiskFile, this);
+
+            regionLock.writeLock().lock();
+            try {
+                if (!regions.contains(regionFile)) {
+                    // Destroyed while we were writing it out.
+                    regionDiskFile.delete();
+                    return regionFile;
+                }
+                for (Entity entity : regionFile.getMemstore().values()) {
+                    if (snapshot.get(entity.getKey()) != entity) {
+                        newRegionFile.restore(entity);
                     }
-                    Files.write(regionDiskFile.toPath(), entity.toBytes().array(), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
                 }
-                RegionFile newRegionFile = new RegionFile(regionDiskFile, this);
                 regions.add(newRegionFile);
                 destroyRegion(regionFile);
-                return newRegionFile;
+                rebuildLookup();
+            } finally {
+                regionLock.writeLock().unlock();
             }
-            return regionFile;
+            return newRegionFile;
         } catch (IOException e) {
             throw new RuntimeException("Error flushing region", e);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-            throw Throwables.propagate(e);
         } finally {
             transition.release();
         }
     }
 
+    /**
+     * Writes the entities out in chunks that go through the io scheduler, syncing every sync interval so the page
+     * cache never builds up a large amount of dirty data that has to be written back in one go.
+     */
+    private void writeRegion(File regionDiskFile, Iterator<Entity> values) throws IOException {
+        FileChannel channel = FileChannel.open(regionDiskFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND, StandardOpenOption.CREATE);
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(ioScheduler.getWriteChunkBytes());
+            long unsynced = 0;
+            while (values.hasNext()) {
+                Entity entity = values.next();
+                if (entity.isDeleted()) {
+                    continue;
+                }
+                ByteBuffer bytes = entity.toBytes();
+                if (bytes.position() > chunk.remaining()) {
+                    unsynced = writeChunk(channel, chunk, unsynced);
+                }
+                if (bytes.position() > chunk.capacity()) {
+                    unsynced = writeChunk(channel, bytes, unsynced);
+                } else {
+                    bytes.flip();
+                    chunk.put(bytes);
+                }
+            }
+            writeChunk(channel, chunk, unsynced);
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private long writeChunk(FileChannel channel, ByteBuffer chunk, long unsynced) throws IOException {
+        chunk.flip();
+        int length = chunk.remaining();
+        ioScheduler.acquireWrite(length);
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+        unsynced += length;
+        if (ioScheduler.getSyncIntervalBytes() > 0 && unsynced >= ioScheduler.getSyncIntervalBytes()) {
+            channel.force(false);
+            return 0;
+        }
+        return unsynced;
+    }
+
+    public RegionSpliterator spliterator() {
+        return spliterator(null, null, null);
+    }
+
+    /**
+     * Spliterator over every region's values that splits by region and by block within a region file. It holds the
+     * region files open until it has been run to the end or closed.
+     *
+     * @param startKey  inclusive start of the scan, null to start at the first key.
+     * @param endKey    exclusive end of the scan, null to run to the last key.
+     * @param keyFilter applied to keys before their values are read, null to keep every key.
+     */
+    public RegionSpliterator spliterator(byte[] startKey, byte[] endKey, Predicate<byte[]> keyFilter) {
+        // Regions are swapped under the write lock, so this sees either the region being flushed or its replacement.
+        regionLock.readLock().lock();
+        try {
+            return new RegionSpliterator(regions, startKey, endKey, keyFilter);
+        } finally {
+            regionLock.readLock().unlock();
+        }
+    }
+
+    public Stream<Entity> parallelStream() {
+        return parallelStream(null, null, null);
+    }
+
+    /**
+     * Parallel stream over {@link #spliterator(byte[], byte[], Predicate)}. Streams that short circuit or can fail
+     * part way should be closed to release the region files.
+     */
+    public Stream<Entity> parallelStream(byte[] startKey, byte[] endKey, Predicate<byte[]> keyFilter) {
+        final RegionSpliterator spliterator = spliterator(startKey, endKey, keyFilter);
+        return StreamSupport.stream(spliterator, true).onClose(new Runnable() {
+            @Override
+            public void run() {
+                spliterator.close();
+            }
+        });
+    }
+
+    /**
+     * Adds the entity to its region. When the region's memstore has grown past
+     * {@link RegionFile#MEMSTORE_BLOCKING_SIZE} because its flush can't keep up, this waits for the flush.
+     */
     public void put(Entity entity) {
-        Optional<RegionFile> region = getRegion(entity.getKey());
-        if (region.isPresent()) {
-            region.get().add(entity);
+        Optional<RegionFile> region;
+        do {
+            ensureRegion();
+            regionLock.readLock().lock();
+            try {
+                region = findRegion(entity.getKey());
+                if (region.isPresent()) {
+                    region.get().add(entity);
+                }
+            } finally {
+                regionLock.readLock().unlock();
+            }
+        } while (!region.isPresent());
+
+        // Wait outside the lock, the flush needs the write lock to swap the region.
+        if (region.get().getMemstore().size() > RegionFile.MEMSTORE_BLOCKING_SIZE) {
+            awaitFlush(region.get());
         }
     }
 
     public void destroyRegion(RegionFile regionFile) {
-        regionFile.getRegionFile().delete();
-        regions.remove(regionFile);
+        regionLock.writeLock().lock();
+        try {
+            regionFile.getRegionFile().delete();
+            regions.remove(regionFile);
+            rebuildLookup();
+        } finally {
+            regionLock.writeLock().unlock();
+        }
     }
 
     public void destroyAllRegions() {
-
-        for (RegionFile regionFile : regions) {
-            regionFile.getRegionFile().delete();
+        regionLock.writeLock().lock();
+        try {
+            for (RegionFile regionFile : regions) {
+                regionFile.getRegionFile().delete();
+            }
+            regions.clear();
+            rebuildLookup();
+        } finally {
+            regionLock.writeLock().unlock();
         }
-        regions.clear();
     }
 
     @Override
@@ -140,10 +384,18 @@ public class RegionManager extends AbstractIdleService {
                 log.error("Error opening region "+file.toPath().getFileName());
             }
         }
+        regionLock.writeLock().lock();
+        try {
+            rebuildLookup();
+        } finally {
+            regionLock.writeLock().unlock();
+        }
     }
 
     @Override
     protected void shutDown() throws Exception {
+        flushExecutor.shutdown();
+        flushExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         log.info("Shutting down region manager, flushing " + regions.size() + " regions.");
         for (RegionFile region : regions) {
             flushRegion(region);
@@ -0,0 +1,199 @@
+package com.woot.storage.region;
+
+import com.google.common.base.Predicate;
+import com.google.common.primitives.SignedBytes;
+import com.woot.storage.Entity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the logical values of a set of regions. It splits first across regions and then across the blocks
+ * of a single region file so a parallel stream can scan one region with several threads. The key range and key filter
+ * are pushed down to the region files so blocks outside of the range are never read.
+ * <p/>
+ * Every region's disk file is opened when the spliterator is created, so a flush that replaces a region during the
+ * scan doesn't take its data away. The scan sees each region as it was up to the flush that replaced it, puts after
+ * that aren't guaranteed to show up.
+ * <p/>
+ * The files are closed once the spliterator and all its splits have run to the end. A scan that stops early has to
+ * be closed, {@link RegionManager#parallelStream()} does this when the stream is closed.
+ */
+public class RegionSpliterator implements Spliterator<Entity>, Closeable {
+
+    private static final Logger log = LogManager.getLogger(RegionSpliterator.class);
+
+    private final Scan scan;
+    private final List<Segment> segments;
+
+    private int current = 0;
+    private Iterator<Entity> values;
+    private boolean finished = false;
+
+    RegionSpliterator(Iterable<RegionFile> regions, byte[] startKey, byte[] endKey, Predicate<byte[]> keyFilter) {
+        this(new Scan(startKey, endKey, keyFilter), new ArrayList<Segment>());
+        try {
+            for (RegionFile region : regions) {
+                if (!overlaps(region, startKey, endKey)) {
+                    continue;
+                }
+                int fromBlock = startKey == null ? 0 : region.findBlock(startKey);
+                int toBlock = endKey == null ? region.getBlockCount() : region.findBlock(endKey) + 1;
+                if (fromBlock < toBlock) {
+                    FileChannel channel = region.openDiskChannel();
+                    scan.channels.add(channel);
+                    segments.add(new Segment(region, channel, fromBlock, toBlock));
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private RegionSpliterator(Scan scan, List<Segment> segments) {
+        this.scan = scan;
+        this.segments = segments;
+        scan.openSpliterators.incrementAndGet();
+    }
+
+    private static boolean overlaps(RegionFile region, byte[] startKey, byte[] endKey) {
+        // A region without keys can still pick some up before the scan gets to it.
+        if (region.getStartKey() == null || region.getEndKey() == null) {
+            return true;
+        }
+        if (startKey != null && SignedBytes.lexicographicalComparator().compare(region.getEndKey(), startKey) < 0) {
+            return false;
+        }
+        return endKey == null || SignedBytes.lexicographicalComparator().compare(region.getStartKey(), endKey) < 0;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Entity> action) {
+        while (true) {
+            if (values != null && values.hasNext()) {
+                action.accept(values.next());
+                return true;
+            }
+            if (current >= segments.size()) {
+                finish();
+                return false;
+            }
+            Segment segment = segments.get(current++);
+            values = segment.region.getValues(segment.channel, segment.fromBlock, segment.toBlock,
+                    scan.startKey, scan.endKey, scan.keyFilter);
+        }
+    }
+
+    @Override
+    public Spliterator<Entity> trySplit() {
+        // Only split what hasn't been started yet.
+        if (values != null || finished) {
+            return null;
+        }
+        int remaining = segments.size() - current;
+        if (remaining > 1) {
+            int mid = current + remaining / 2;
+            List<Segment> prefix = new ArrayList<Segment>(segments.subList(current, mid));
+            current = mid;
+            return new RegionSpliterator(scan, prefix);
+        }
+        if (remaining == 1) {
+            Segment segment = segments.get(current);
+            if (segment.toBlock - segment.fromBlock > 1) {
+                int mid = segment.fromBlock + (segment.toBlock - segment.fromBlock) / 2;
+                List<Segment> prefix = new ArrayList<Segment>();
+                prefix.add(new Segment(segment.region, segment.channel, segment.fromBlock, mid));
+                segments.set(current, new Segment(segment.region, segment.channel, mid, segment.toBlock));
+                return new RegionSpliterator(scan, prefix);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = 0;
+        for (int i = current; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            size += segment.region.estimateSize(segment.fromBlock, segment.toBlock);
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return NONNULL | CONCURRENT;
+    }
+
+    /**
+     * Closes the region files of this spliterator and every split made from it.
+     */
+    @Override
+    public void close() {
+        scan.close();
+    }
+
+    private void finish() {
+        if (finished) return;
+        finished = true;
+        if (scan.openSpliterators.decrementAndGet() == 0) {
+            scan.close();
+        }
+    }
+
+    /**
+     * State shared by a spliterator and all of its splits.
+     */
+    private static class Scan {
+
+        private final byte[] startKey;
+        private final byte[] endKey;
+        private final Predicate<byte[]> keyFilter;
+        private final List<FileChannel> channels = new ArrayList<FileChannel>();
+        private final AtomicInteger openSpliterators = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Scan(byte[] startKey, byte[] endKey, Predicate<byte[]> keyFilter) {
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.keyFilter = keyFilter;
+        }
+
+        private void close() {
+            if (!closed.compareAndSet(false, true)) return;
+            for (FileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.error("Error closing region file after scan", e);
+                }
+            }
+        }
+    }
+
+    private static class Segment {
+
+        private final RegionFile region;
+        private final FileChannel channel;
+        private final int fromBlock;
+        private final int toBlock;
+
+        private Segment(RegionFile region, FileChannel channel, int fromBlock, int toBlock) {
+            this.region = region;
+            this.channel = channel;
+            this.fromBlock = fromBlock;
+            this.toBlock = toBlock;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.woot.region;
+
+import com.woot.storage.region.IoScheduler;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class IoSchedulerTest {
+
+    private static final long MAX_RATE = 1024 * 1024;
+
+    @Test
+    public void testWriteRateLimited() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(10000, false, 1024, 0);
+        long start = System.nanoTime();
+        // The first acquire is free, the next two pay for 5000 bytes each at 10000 bytes/sec.
+        ioScheduler.acquireWrite(5000);
+        ioScheduler.acquireWrite(5000);
+        ioScheduler.acquireWrite(5000);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertTrue("Writes finished in " + elapsed + "ms", elapsed >= 900);
+    }
+
+    @Test
+    public void testBacksOffOnReadLatency() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(MAX_RATE, true, 1024, 0);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(1));
+        adjust(ioScheduler);
+        Assert.assertEquals((double) MAX_RATE, ioScheduler.getWriteBytesPerSecond(), 1);
+
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(50));
+        adjust(ioScheduler);
+        Assert.assertTrue(ioScheduler.getWriteBytesPerSecond() < MAX_RATE);
+    }
+
+    @Test
+    public void testIgnoresPageCacheLatency() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(MAX_RATE, true, 1024, 0);
+        reportReads(ioScheduler, TimeUnit.MICROSECONDS.toNanos(2));
+        adjust(ioScheduler);
+        // Five times the baseline but still far too fast to be the disk.
+        reportReads(ioScheduler, TimeUnit.MICROSECONDS.toNanos(10));
+        adjust(ioScheduler);
+        Assert.assertEquals((double) MAX_RATE, ioScheduler.getWriteBytesPerSecond(), 1);
+    }
+
+    @Test
+    public void testKeepsBackingOffUnderSustainedLatency() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(MAX_RATE, true, 1024, 0);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(1));
+        adjust(ioScheduler);
+        for (int i = 0; i < 10; i++) {
+            reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(50));
+            adjust(ioScheduler);
+        }
+        Assert.assertEquals((double) MAX_RATE / 16, ioScheduler.getWriteBytesPerSecond(), 1);
+    }
+
+    @Test
+    public void testRecoversWhenLatencyDrops() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(MAX_RATE, true, 1024, 0);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(1));
+        adjust(ioScheduler);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(50));
+        adjust(ioScheduler);
+        double backedOff = ioScheduler.getWriteBytesPerSecond();
+        Assert.assertTrue(backedOff < MAX_RATE);
+
+        // Fast reads bring the rate back up step by step.
+        for (int i = 0; i < 20 && ioScheduler.getWriteBytesPerSecond() < MAX_RATE - 1; i++) {
+            reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(1));
+            adjust(ioScheduler);
+        }
+        Assert.assertEquals((double) MAX_RATE, ioScheduler.getWriteBytesPerSecond(), 1);
+    }
+
+    @Test
+    public void testRecoversWhenReadsStop() throws Exception {
+        IoScheduler ioScheduler = new IoScheduler(MAX_RATE, true, 1024, 0);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(1));
+        adjust(ioScheduler);
+        reportReads(ioScheduler, TimeUnit.MILLISECONDS.toNanos(50));
+        adjust(ioScheduler);
+        Assert.assertTrue(ioScheduler.getWriteBytesPerSecond() < MAX_RATE);
+
+        // The last slow reads mustn't keep writes throttled once nobody is reading.
+        for (int i = 0; i < 20 && ioScheduler.getWriteBytesPerSecond() < MAX_RATE - 1; i++) {
+            adjust(ioScheduler);
+        }
+        Assert.assertEquals((double) MAX_RATE, ioScheduler.getWriteBytesPerSecond(), 1);
+    }
+
+    private static void reportReads(IoScheduler ioScheduler, long latencyNanos) {
+        for (int i = 0; i < 50; i++) {
+            ioScheduler.readStarted();
+            ioScheduler.readFinished(latencyNanos);
+        }
+    }
+
+    // The rate is adjusted at most every 100ms on the next write.
+    private static void adjust(IoScheduler ioScheduler) throws InterruptedException {
+        Thread.sleep(110);
+        ioScheduler.acquireWrite(1);
+    }
+}
@@ -1,11 +1,14 @@
 package com.woot.region;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.SignedBytes;
 import com.woot.storage.Entity;
+import com.woot.storage.region.IoScheduler;
 import com.woot.storage.region.RegionManager;
 import com.woot.storage.region.RegionFile;
+import com.woot.storage.region.RegionSpliterator;
 import junit.framework.Assert;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -13,9 +16,21 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class RegionFileTest {
 
@@ -165,4 +180,312 @@ public class RegionFileTest {
         regionManager.destroyAllRegions();
     }
 
+    @Test
+    public void testThrottledFlush() throws Exception {
+        // Small chunks and a sync every few chunks so the flush goes through the chunked write path.
+        IoScheduler ioScheduler = new IoScheduler(64 * 1024, true, 256, 1024);
+        File base = new File(System.getProperty("java.io.tmpdir") + File.separator + UUID.randomUUID());
+        RegionManager throttledManager = new RegionManager(base.getAbsolutePath(), ioScheduler);
+        throttledManager.startAsync().awaitRunning();
+        try {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for (int i = 0; i < 100; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                keys.add(key);
+                throttledManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+            // Bigger than a chunk so it gets written on its own.
+            byte[] bigKey = UUID.randomUUID().toString().getBytes();
+            byte[] bigValue = new byte[1000];
+            Arrays.fill(bigValue, (byte) 'x');
+            throttledManager.put(new Entity(bigKey, bigValue, System.currentTimeMillis(), false));
+
+            RegionFile flushed = throttledManager.flushRegion(throttledManager.getRegion(keys.get(0)).get());
+            Assert.assertTrue(flushed.getMemstore().isEmpty());
+            for (byte[] key : keys) {
+                Assert.assertTrue(throttledManager.getRegion(key).get().get(key).isPresent());
+            }
+            Assert.assertTrue(Arrays.equals(bigValue, throttledManager.getRegion(bigKey).get().get(bigKey).get().getValue()));
+        } finally {
+            throttledManager.destroyAllRegions();
+            throttledManager.stopAsync().awaitTerminated();
+            deleteDirectory(base);
+        }
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        // Holds every flush write until released so the flush is guaranteed to still be running.
+        final CountDownLatch releaseWrites = new CountDownLatch(1);
+        IoScheduler ioScheduler = new IoScheduler(IoScheduler.DEFAULT_WRITE_BYTES_PER_SECOND, false, 1024, 4096) {
+            @Override
+            public void acquireWrite(int bytes) {
+                try {
+                    releaseWrites.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                super.acquireWrite(bytes);
+            }
+        };
+        File base = new File(System.getProperty("java.io.tmpdir") + File.separator + UUID.randomUUID());
+        final RegionManager throttledManager = new RegionManager(base.getAbsolutePath(), ioScheduler);
+        RegionManager reopenedManager = new RegionManager(base.getAbsolutePath());
+        throttledManager.startAsync().awaitRunning();
+        try {
+            final List<byte[]> keys = Collections.synchronizedList(new ArrayList<byte[]>());
+            for (int i = 0; i < 600; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                keys.add(key);
+                throttledManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+            // The puts returned while the flush they queued is stuck, so the old region is still the live one.
+            final RegionFile region = throttledManager.getRegion(keys.get(0)).get();
+            Assert.assertEquals(600, region.getMemstore().size());
+            for (byte[] key : keys) {
+                Assert.assertTrue(region.get(key).isPresent());
+            }
+
+            // Past the blocking size puts have to wait on the flush.
+            final int blockingPuts = RegionFile.MEMSTORE_BLOCKING_SIZE - 600 + 10;
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < blockingPuts; i++) {
+                        byte[] key = UUID.randomUUID().toString().getBytes();
+                        keys.add(key);
+                        throttledManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+                    }
+                }
+            });
+            writer.start();
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+            while (!(region.getMemstore().size() > RegionFile.MEMSTORE_BLOCKING_SIZE && writer.getState() == Thread.State.WAITING)) {
+                Assert.assertTrue("Writer never blocked on the flush", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(writer.isAlive());
+
+            releaseWrites.countDown();
+            writer.join();
+
+            // Puts made while the flush was writing have to survive the region swap.
+            throttledManager.stopAsync().awaitTerminated();
+            reopenedManager.startAsync().awaitRunning();
+            Assert.assertEquals(600 + blockingPuts, keys.size());
+            for (byte[] key : keys) {
+                Assert.assertTrue(reopenedManager.getRegion(key).get().get(key).isPresent());
+            }
+        } finally {
+            releaseWrites.countDown();
+            reopenedManager.destroyAllRegions();
+            throttledManager.destroyAllRegions();
+            deleteDirectory(base);
+        }
+    }
+
+    @Test
+    public void testGetRegionDuringBackgroundFlushes() throws Exception {
+        final byte[] key = UUID.randomUUID().toString().getBytes();
+        regionManager.put(new Entity(key, "value".getBytes(), System.currentTimeMillis(), false));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Assert.assertTrue(regionManager.getRegion(key).isPresent());
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                regionManager.put(new Entity(UUID.randomUUID().toString().getBytes(), UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+            regionManager.destroyAllRegions();
+        }
+        Assert.assertNull(failure.get());
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        try {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for (int i = 0; i < 1000; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                keys.add(key);
+                regionManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+            regionManager.flushRegion(regionManager.getRegion(keys.get(0)).get());
+            // Leave some values in the memstore so the scan has to merge them in.
+            for (int i = 0; i < 10; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                keys.add(key);
+                regionManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+
+            // A single flushed region should still split on its blocks.
+            RegionSpliterator spliterator = regionManager.spliterator();
+            Spliterator<Entity> split = spliterator.trySplit();
+            Assert.assertNotNull(split);
+            // Closing either one closes the files of both.
+            spliterator.close();
+            Assert.assertEquals(keys.size(), regionManager.parallelStream().count());
+
+            Collections.sort(keys, SignedBytes.lexicographicalComparator());
+            byte[] startKey = keys.get(100);
+            byte[] endKey = keys.get(900);
+            Assert.assertEquals(800, regionManager.parallelStream(startKey, endKey, null).count());
+
+            Predicate<byte[]> startsWithA = new Predicate<byte[]>() {
+                @Override
+                public boolean apply(byte[] key) {
+                    return key[0] == 'a';
+                }
+            };
+            Set<String> expected = new HashSet<String>();
+            for (byte[] key : keys) {
+                if (startsWithA.apply(key)) {
+                    expected.add(new String(key));
+                }
+            }
+            Assert.assertEquals(expected, scannedKeys(regionManager.parallelStream(null, null, startsWithA)));
+        } finally {
+            regionManager.destroyAllRegions();
+        }
+    }
+
+    @Test
+    public void testParallelScanHidesDeletes() throws Exception {
+        try {
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for (int i = 0; i < 400; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                keys.add(key);
+                regionManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), 1l, false));
+            }
+            regionManager.flushRegion(regionManager.getRegion(keys.get(0)).get());
+
+            // Tombstones in the memstore have to hide the disk entries of the block they fall in.
+            Set<String> expected = new HashSet<String>();
+            for (int i = 0; i < keys.size(); i++) {
+                if (i % 10 == 0) {
+                    regionManager.put(new Entity(keys.get(i), new byte[0], 2l, true));
+                } else {
+                    expected.add(new String(keys.get(i)));
+                }
+            }
+            Assert.assertEquals(expected, scannedKeys(regionManager.parallelStream()));
+
+            Collections.sort(keys, SignedBytes.lexicographicalComparator());
+            Set<String> expectedRange = new HashSet<String>();
+            for (byte[] key : keys.subList(50, 350)) {
+                if (expected.contains(new String(key))) {
+                    expectedRange.add(new String(key));
+                }
+            }
+            Assert.assertEquals(expectedRange, scannedKeys(regionManager.parallelStream(keys.get(50), keys.get(350), null)));
+        } finally {
+            regionManager.destroyAllRegions();
+        }
+    }
+
+    @Test
+    public void testFlushDuringScan() throws Exception {
+        try {
+            Set<String> expected = new HashSet<String>();
+            for (int i = 0; i < 400; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                expected.add(new String(key));
+                regionManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+            RegionFile region = regionManager.getRegion(expected.iterator().next().getBytes()).get();
+            regionManager.flushRegion(region);
+            for (int i = 0; i < 50; i++) {
+                byte[] key = UUID.randomUUID().toString().getBytes();
+                expected.add(new String(key));
+                regionManager.put(new Entity(key, UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+
+            // The flush deletes the file the scan started on, the scan still has to see all of it.
+            Spliterator<Entity> spliterator = regionManager.spliterator();
+            regionManager.flushRegion(regionManager.getRegion(expected.iterator().next().getBytes()).get());
+            final Set<String> scanned = new HashSet<String>();
+            spliterator.forEachRemaining(new Consumer<Entity>() {
+                @Override
+                public void accept(Entity entity) {
+                    scanned.add(new String(entity.getKey()));
+                }
+            });
+            Assert.assertEquals(expected, scanned);
+        } finally {
+            regionManager.destroyAllRegions();
+        }
+    }
+
+    @Test
+    public void testShortCircuitScanCloses() throws Exception {
+        try {
+            for (int i = 0; i < 400; i++) {
+                regionManager.put(new Entity(UUID.randomUUID().toString().getBytes(), UUID.randomUUID().toString().getBytes(), System.currentTimeMillis(), false));
+            }
+            regionManager.flushRegion(regionManager.getRegion("a".getBytes()).get());
+
+            RegionSpliterator spliterator = regionManager.spliterator();
+            Assert.assertTrue(spliterator.tryAdvance(new Consumer<Entity>() {
+                @Override
+                public void accept(Entity entity) {
+                }
+            }));
+            spliterator.close();
+            try {
+                spliterator.forEachRemaining(new Consumer<Entity>() {
+                    @Override
+                    public void accept(Entity entity) {
+                    }
+                });
+                Assert.fail("Scan should have been closed");
+            } catch (RuntimeException e) {
+                // Expected, the region files are closed.
+            }
+
+            try (Stream<Entity> stream = regionManager.parallelStream()) {
+                Assert.assertTrue(stream.findAny().isPresent());
+            }
+        } finally {
+            regionManager.destroyAllRegions();
+        }
+    }
+
+    private static Set<String> scannedKeys(Stream<Entity> stream) {
+        Set<String> keys = new HashSet<String>();
+        try {
+            Iterator<Entity> values = stream.iterator();
+            while (values.hasNext()) {
+                keys.add(new String(values.next().getKey()));
+            }
+        } finally {
+            stream.close();
+        }
+        return keys;
+    }
+
 }